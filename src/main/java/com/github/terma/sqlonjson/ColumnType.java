@@ -18,6 +18,9 @@ package com.github.terma.sqlonjson;
 
 import com.google.gson.JsonElement;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
@@ -36,6 +39,16 @@ enum ColumnType {
             if (value == null) ps.setObject(index, null);
             else ps.setLong(index, value.getAsLong());
         }
+
+        @Override
+        public void write(DataOutput out, JsonElement value) throws IOException {
+            out.writeLong(value.getAsLong());
+        }
+
+        @Override
+        public Object read(Snapshot.Reader in) throws IOException {
+            return in.readLong();
+        }
     },
 
     DOUBLE {
@@ -49,6 +62,16 @@ enum ColumnType {
             if (value == null) ps.setObject(index, null);
             else ps.setDouble(index, value.getAsDouble());
         }
+
+        @Override
+        public void write(DataOutput out, JsonElement value) throws IOException {
+            out.writeDouble(value.getAsDouble());
+        }
+
+        @Override
+        public Object read(Snapshot.Reader in) throws IOException {
+            return in.readDouble();
+        }
     };
 
     public String getSqlName() {
@@ -60,4 +83,21 @@ enum ColumnType {
         else if (value.isJsonPrimitive()) ps.setString(index, value.getAsString());
         else ps.setString(index, value.toString());
     }
+
+    /**
+     * Write not null value to snapshot in same form as {@link #setToPs(PreparedStatement, int, JsonElement)}
+     * puts it to DB.
+     */
+    public void write(DataOutput out, JsonElement value) throws IOException {
+        final String string = value.isJsonPrimitive() ? value.getAsString() : value.toString();
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public Object read(Snapshot.Reader in) throws IOException {
+        final byte[] bytes = new byte[in.readCount()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,381 @@
+/*
+    Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+package com.github.terma.sqlonjson;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of converted DB. Layout:
+ * <pre>
+ * header: magic, version, source length, source last modified, time of check, source SHA-1
+ * body: (true, table name, columns (name, type), row count, values row by row)* false
+ * CRC32 of body
+ * </pre>
+ * Rows are stored in same order as they are inserted, so restore streams them to DB
+ * without keeping whole table in memory.
+ * Snapshot is fresh when source has same length and same hash. Hash isn't checked when source
+ * has same last modified time and it was older than time of check at least on
+ * {@link #MTIME_GRANULARITY}, so changes in same time slot as last check are not missed.
+ * After successful hash check header gets new last modified time of source, so copied or
+ * touched source is hashed only once and next warm starts read only snapshot.
+ */
+final class Snapshot {
+
+    static final int LAST_MODIFIED_OFFSET = 4 + 4 + 8;
+    static final int HASH_OFFSET = LAST_MODIFIED_OFFSET + 8 + 8;
+    static final int HASH_SIZE = 20;
+    static final int HEADER_SIZE = HASH_OFFSET + HASH_SIZE;
+
+    /**
+     * Coarsest resolution of last modified time between common file systems (FAT),
+     * ext3 and HFS+ have 1 sec
+     */
+    static final long MTIME_GRANULARITY = 2000;
+
+    private static final Logger LOGGER = Logger.getLogger(Snapshot.class.getName());
+
+    private static final int MAGIC = 0x534f4a53;
+    private static final int VERSION = 2;
+    private static final int CHECKSUM_SIZE = 8;
+
+    private Snapshot() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hash(byte[] bytes) {
+        return digest().digest(bytes);
+    }
+
+    /**
+     * Streams file with fixed buffer, so big source doesn't need to be in memory for check.
+     */
+    private static byte[] hash(File file) throws IOException {
+        final MessageDigest digest = digest();
+        try (InputStream in = new FileInputStream(file)) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Reads body of snapshot. All counts and lengths are checked against rest of body,
+     * so corrupted snapshot fails with {@link IOException} instead of huge allocation.
+     * Checksum is calculated during reading and verified by {@link #nextTable()} at the end of body,
+     * so snapshot is read only once. Caller must drop everything restored if reading fails.
+     */
+    static final class Reader extends DataInputStream {
+
+        private final CheckedInputStream checked;
+        private final CountingInputStream counting;
+        private final long bodySize;
+        private final File file;
+        private final byte[] hash;
+        private final boolean refresh;
+        private final long sourceLastModified;
+        private final long sourceCheckedAt;
+
+        private Reader(CheckedInputStream checked, CountingInputStream counting, long bodySize, File file,
+                       byte[] hash, boolean refresh, long sourceLastModified, long sourceCheckedAt) {
+            super(counting);
+            this.checked = checked;
+            this.counting = counting;
+            this.bodySize = bodySize;
+            this.file = file;
+            this.hash = hash;
+            this.refresh = refresh;
+            this.sourceLastModified = sourceLastModified;
+            this.sourceCheckedAt = sourceCheckedAt;
+        }
+
+        /**
+         * @return reader positioned at body or null if snapshot has unknown format or was created
+         * not from current content of source
+         * @throws IOException if snapshot is corrupted
+         */
+        static Reader open(File file, File source) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final long bodySize = raf.length() - HEADER_SIZE - CHECKSUM_SIZE;
+                if (bodySize < 0) throw new IOException("Snapshot " + file + " is too short");
+
+                final byte[] headerBytes = new byte[HEADER_SIZE];
+                raf.readFully(headerBytes);
+                final DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+                if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                    raf.close();
+                    return null;
+                }
+                final long length = header.readLong();
+                final long lastModified = header.readLong();
+                final long checkedAt = header.readLong();
+                final byte[] hash = new byte[HASH_SIZE];
+                header.readFully(hash);
+
+                if (source.length() != length) {
+                    raf.close();
+                    return null;
+                }
+
+                final boolean refresh;
+                final long sourceCheckedAt = System.currentTimeMillis();
+                final long sourceLastModified = source.lastModified();
+                if (sourceLastModified == lastModified && lastModified < checkedAt - MTIME_GRANULARITY) {
+                    refresh = false;
+                } else if (Arrays.equals(hash, hash(source))) {
+                    refresh = true;
+                } else {
+                    raf.close();
+                    return null;
+                }
+
+                final CheckedInputStream checked = new CheckedInputStream(
+                        new BufferedInputStream(Channels.newInputStream(raf.getChannel())), new CRC32());
+                return new Reader(checked, new CountingInputStream(checked), bodySize,
+                        file, hash, refresh, sourceLastModified, sourceCheckedAt);
+            } catch (IOException | RuntimeException exception) {
+                raf.close();
+                throw exception;
+            }
+        }
+
+        /**
+         * Put new last modified time of source to header, failure only means that source will be
+         * hashed again on next restore.
+         */
+        private static void refreshHeader(File file, byte[] hash, long sourceLastModified, long checkedAt) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                final byte[] current = new byte[HASH_SIZE];
+                raf.seek(HASH_OFFSET);
+                raf.readFully(current);
+                if (!Arrays.equals(hash, current)) return; // snapshot was replaced in meantime
+
+                raf.seek(LAST_MODIFIED_OFFSET);
+                raf.writeLong(sourceLastModified);
+                raf.writeLong(checkedAt);
+            } catch (IOException exception) {
+                LOGGER.warning("Can't refresh snapshot " + file + ": " + exception);
+            }
+        }
+
+        /**
+         * @return true if next table is present, false if body is finished and checksum is correct
+         */
+        boolean nextTable() throws IOException {
+            if (readBoolean()) return true;
+
+            if (remaining() != 0) {
+                throw new IOException("Snapshot is corrupted, body ends at " + counting.count + " instead of " + bodySize);
+            }
+            final long crc = checked.getChecksum().getValue();
+            if (readLong() != crc) throw new IOException("Snapshot " + file + " has wrong checksum");
+
+            if (refresh) refreshHeader(file, hash, sourceLastModified, sourceCheckedAt);
+            return false;
+        }
+
+        /**
+         * @return count or length which fits in rest of body
+         */
+        int readCount() throws IOException {
+            final int count = readInt();
+            if (count < 0 || count > remaining()) {
+                throw new IOException("Snapshot is corrupted, count " + count + " but only " + remaining() + " bytes left");
+            }
+            return count;
+        }
+
+        ColumnType readColumnType() throws IOException {
+            final String name = readUTF();
+            try {
+                return ColumnType.valueOf(name);
+            } catch (IllegalArgumentException exception) {
+                throw new IOException("Snapshot is corrupted, unknown column type " + name);
+            }
+        }
+
+        private long remaining() {
+            return bodySize - counting.count;
+        }
+
+    }
+
+    /**
+     * Writes snapshot to temp file near target and replaces target only when all data is written,
+     * so readers never see partially written snapshot.
+     * <p>
+     * Write failures don't break conversion: first failure is remembered, all next writes are
+     * skipped and failure is reported by {@link #commit()}.
+     */
+    static final class Writer {
+
+        private final File file;
+        private final File temp;
+        private final CheckedOutputStream checked;
+        private final DataOutputStream out;
+        private IOException failure;
+
+        private Writer(File file, File temp, CheckedOutputStream checked) {
+            this.file = file;
+            this.temp = temp;
+            this.checked = checked;
+            this.out = new DataOutputStream(checked);
+        }
+
+        /**
+         * @param sourceLastModified should be taken before reading source, so later changes make snapshot stale
+         * @param checkedAt          current time taken before source last modified time
+         */
+        static Writer create(File file, long sourceLastModified, long checkedAt, byte[] sourceBytes) throws IOException {
+            final File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            final OutputStream stream;
+            try {
+                stream = new BufferedOutputStream(new FileOutputStream(temp));
+            } catch (IOException exception) {
+                Files.deleteIfExists(temp.toPath());
+                throw exception;
+            }
+
+            final Writer writer = new Writer(file, temp, new CheckedOutputStream(stream, new CRC32()));
+            try {
+                final DataOutputStream header = new DataOutputStream(stream);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeLong(sourceBytes.length);
+                header.writeLong(sourceLastModified);
+                header.writeLong(checkedAt);
+                header.write(hash(sourceBytes));
+                return writer;
+            } catch (IOException exception) {
+                writer.abort();
+                throw exception;
+            }
+        }
+
+        void writeTable(String sqlTableName, List<String> sqlColumns, List<String> columns,
+                        List<ColumnType> columnTypes, JsonArray data) {
+            if (failure != null) return;
+            try {
+                out.writeBoolean(true);
+                out.writeUTF(sqlTableName);
+                out.writeInt(sqlColumns.size());
+                for (int cl = 0; cl < sqlColumns.size(); cl++) {
+                    out.writeUTF(sqlColumns.get(cl));
+                    out.writeUTF(columnTypes.get(cl).name());
+                }
+                out.writeInt(data.size());
+                for (int i = 0; i < data.size(); i++) {
+                    final JsonObject item = data.get(i).getAsJsonObject();
+                    for (int cl = 0; cl < columns.size(); cl++) {
+                        final JsonElement value = item.get(columns.get(cl));
+                        out.writeBoolean(value != null);
+                        if (value != null) columnTypes.get(cl).write(out, value);
+                    }
+                }
+            } catch (IOException exception) {
+                failure = exception;
+            }
+        }
+
+        /**
+         * Finish snapshot and replace target file by it. Temp file is removed in any case.
+         *
+         * @throws IOException first write failure or failure of replacement
+         */
+        void commit() throws IOException {
+            try {
+                if (failure != null) throw failure;
+                out.writeBoolean(false);
+                out.writeLong(checked.getChecksum().getValue());
+                out.close();
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                abort();
+            }
+        }
+
+        /**
+         * Drop snapshot, target file stays untouched.
+         */
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+                // nothing to do, temp file will be removed anyway
+            }
+            temp.delete();
+        }
+
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result != -1) count++;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int result = super.read(b, off, len);
+            if (result != -1) count += result;
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long result = super.skip(n);
+            count += result;
+            return result;
+        }
+
+    }
+
+}
@@ -20,6 +20,10 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -51,6 +55,8 @@ public class SqlOnJson {
     public static final String DEFAULT_USERNAME = "sa";
     public static final String DEFAULT_PASSWORD = "";
 
+    private static final int RESTORE_BATCH_SIZE = 1000;
+
     private static final Logger LOGGER = Logger.getLogger(SqlOnJson.class.getName());
 
     private final AtomicInteger counter;
@@ -121,13 +127,89 @@ public class SqlOnJson {
         return convert(new Plain(json));
     }
 
+    /**
+     * Same as {@link #convertPlain(String)} for JSON file, but keeps binary snapshot of converted DB.
+     * <p>
+     * If snapshot was created from current content of JSON file DB will be restored from snapshot
+     * without JSON parsing and type detection. Otherwise JSON will be converted and snapshot
+     * replaced. Snapshot is only a cache: corrupted snapshot is ignored and failure to write it
+     * doesn't break conversion.
+     *
+     * @param json     - json file
+     * @param snapshot - snapshot file, doesn't need to exist
+     * @return connection to in mem db with tables
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     * @throws IOException if JSON file can't be read
+     */
+    public Connection convertPlain(File json, File snapshot) throws SQLException, ClassNotFoundException, IOException {
+        if (snapshot.isFile()) {
+            try {
+                final Connection c = restore(json, snapshot);
+                if (c != null) return c;
+            } catch (IOException | RuntimeException exception) {
+                LOGGER.warning("Can't restore SQL DB from snapshot " + snapshot + ", convert JSON: " + exception);
+            }
+        }
+
+        final long checkedAt = System.currentTimeMillis();
+        final long lastModified = json.lastModified();
+        final byte[] bytes = Files.readAllBytes(json.toPath());
+        final Plain plain = new Plain(new String(bytes, StandardCharsets.UTF_8));
+
+        final Snapshot.Writer writer;
+        try {
+            writer = Snapshot.Writer.create(snapshot, lastModified, checkedAt, bytes);
+        } catch (IOException exception) {
+            LOGGER.warning("Can't create snapshot " + snapshot + ", convert JSON without it: " + exception);
+            return convert(plain);
+        }
+
+        final Connection c;
+        try {
+            c = convert(plain, writer);
+        } catch (Exception exception) {
+            writer.abort();
+            throw exception;
+        }
+
+        try {
+            writer.commit();
+        } catch (IOException exception) {
+            LOGGER.warning("Can't write snapshot " + snapshot + ": " + exception);
+        }
+        return c;
+    }
+
     public Connection convert(JsonIterator jsonIterator) throws SQLException, ClassNotFoundException {
+        return convert(jsonIterator, null);
+    }
+
+    private Connection openConnection() throws SQLException, ClassNotFoundException {
         Class.forName(driver);
 
         if (counter.get() > Integer.MAX_VALUE - 10) counter.set(0); // to avoid possible overflow, who knows =)
         final int id = counter.incrementAndGet();
 
-        final Connection c = DriverManager.getConnection(url.replaceAll(INSTANCE_ID_PLACEHOLDER, String.valueOf(id)), username, password);
+        return DriverManager.getConnection(url.replaceAll(INSTANCE_ID_PLACEHOLDER, String.valueOf(id)), username, password);
+    }
+
+    private static void createTable(Connection c, String sqlTableName, List<String> sqlColumns, List<ColumnType> columnTypes) throws SQLException {
+        List<String> columnWithTypes = new ArrayList<>();
+        for (int cl = 0; cl < sqlColumns.size(); cl++) {
+            columnWithTypes.add(sqlColumns.get(cl) + " " + columnTypes.get(cl).getSqlName());
+        }
+
+        try (PreparedStatement ps = c.prepareStatement("create table " + sqlTableName + " (" + StringUtils.join(columnWithTypes, ", ") + ")")) {
+            ps.execute();
+        }
+    }
+
+    /**
+     * @param snapshot - optional, if present every converted table will be written to it
+     */
+    private Connection convert(JsonIterator jsonIterator, Snapshot.Writer snapshot) throws SQLException, ClassNotFoundException {
+        final Connection c = openConnection();
         try {
             final long start = System.currentTimeMillis();
 
@@ -141,7 +223,7 @@ public class SqlOnJson {
                 countOfTables++;
 
                 List<ColumnType> columnTypes = new ArrayList<>();
-                List<String> columnWithTypes = new ArrayList<>();
+                List<String> sqlColumns = new ArrayList<>();
                 List<String> columns = new ArrayList<>();
 
                 final LinkedHashMap<String, ColumnType> cls = getColumns(jsonTable);
@@ -150,12 +232,10 @@ public class SqlOnJson {
                 for (final Map.Entry<String, ColumnType> tt : cls.entrySet()) {
                     columns.add(tt.getKey());
                     columnTypes.add(tt.getValue());
-                    columnWithTypes.add(nameToSqlName(tt.getKey()) + " " + tt.getValue().getSqlName());
+                    sqlColumns.add(nameToSqlName(tt.getKey()));
                 }
 
-                try (PreparedStatement ps = c.prepareStatement("create table " + sqlTableName + " (" + StringUtils.join(columnWithTypes, ", ") + ")")) {
-                    ps.execute();
-                }
+                createTable(c, sqlTableName, sqlColumns, columnTypes);
 
                 String parameterPlaceholders = StringUtils.repeat("?", ",", cls.size());
                 try (PreparedStatement ps = c.prepareStatement("insert into " + sqlTableName + " values (" + parameterPlaceholders + ")")) {
@@ -168,8 +248,11 @@ public class SqlOnJson {
                         ps.execute();
                     }
                 }
-            }
 
+                if (snapshot != null) {
+                    snapshot.writeTable(sqlTableName, sqlColumns, columns, columnTypes, jsonTable.data);
+                }
+            }
 
             LOGGER.info("JSON " + jsonIterator.getJsonLength() + " chars to SQL DB with "
                     + countOfTables + " tables in " + (System.currentTimeMillis() - start) + " msec");
@@ -180,4 +263,55 @@ public class SqlOnJson {
         return c;
     }
 
+    /**
+     * @return connection to restored DB or null if snapshot is stale
+     */
+    private Connection restore(File json, File snapshot) throws SQLException, ClassNotFoundException, IOException {
+        try (Snapshot.Reader in = Snapshot.Reader.open(snapshot, json)) {
+            if (in == null) return null;
+
+            final Connection c = openConnection();
+            try {
+                final long start = System.currentTimeMillis();
+
+                int countOfTables = 0;
+
+                while (in.nextTable()) {
+                    countOfTables++;
+
+                    final String sqlTableName = in.readUTF();
+                    final int columnCount = in.readCount();
+                    final List<String> sqlColumns = new ArrayList<>();
+                    final List<ColumnType> columnTypes = new ArrayList<>();
+                    for (int cl = 0; cl < columnCount; cl++) {
+                        sqlColumns.add(in.readUTF());
+                        columnTypes.add(in.readColumnType());
+                    }
+
+                    createTable(c, sqlTableName, sqlColumns, columnTypes);
+
+                    final int rowCount = in.readCount();
+                    String parameterPlaceholders = StringUtils.repeat("?", ",", columnCount);
+                    try (PreparedStatement ps = c.prepareStatement("insert into " + sqlTableName + " values (" + parameterPlaceholders + ")")) {
+                        for (int i = 0; i < rowCount; i++) {
+                            for (int cl = 0; cl < columnCount; cl++) {
+                                ps.setObject(cl + 1, in.readBoolean() ? columnTypes.get(cl).read(in) : null);
+                            }
+                            ps.addBatch();
+                            if ((i + 1) % RESTORE_BATCH_SIZE == 0) ps.executeBatch();
+                        }
+                        ps.executeBatch();
+                    }
+                }
+
+                LOGGER.info("Snapshot " + snapshot + " to SQL DB with "
+                        + countOfTables + " tables in " + (System.currentTimeMillis() - start) + " msec");
+            } catch (Exception exception) {
+                c.close();
+                throw exception;
+            }
+            return c;
+        }
+    }
+
 }
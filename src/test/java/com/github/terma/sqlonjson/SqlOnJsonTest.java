@@ -18,16 +18,44 @@ package com.github.terma.sqlonjson;
 
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 @SuppressWarnings("SqlNoDataSourceInspection")
 public class SqlOnJsonTest {
 
     private final SqlOnJson sqlOnJson = new SqlOnJson();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Put int to body of snapshot and fix checksum, so only count checks could find problem.
+     */
+    private static void putIntWithValidChecksum(File snapshot, int bodyOffset, int value) throws Exception {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(snapshot.toPath()));
+        bytes.putInt(Snapshot.HEADER_SIZE + bodyOffset, value);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), Snapshot.HEADER_SIZE, bytes.capacity() - Snapshot.HEADER_SIZE - 8);
+        bytes.putLong(bytes.capacity() - 8, crc.getValue());
+        Files.write(snapshot.toPath(), bytes.array());
+    }
+
     @Test
     public void representEmptyJsonAsEmptyDb() throws Exception {
         try (Connection c = sqlOnJson.convertPlain("")) {
@@ -213,4 +241,265 @@ public class SqlOnJsonTest {
         }
     }
 
+    @Test
+    public void createSnapshotOnFirstConversionOfFile() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:12000,name:\"super\"}]}");
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(12000, rs.getLong("id"));
+        }
+        Assert.assertTrue(snapshot.isFile());
+    }
+
+    @Test
+    public void restoreFromSnapshotWithSameTypesAndNulls() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        String string8k = StringUtils.repeat('z', 8 * 1000);
+        write(json, "{a:[{id:12000,name:\"super\",p:0.5,em:{b:1}},{id:-90,p:-1.25,s:\"" + string8k + "\"}],\"_x-y\":[{a:\"5\"}],e:[]}");
+        Assert.assertTrue(json.setLastModified(json.lastModified() - 60 * 60 * 1000));
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            Assert.assertEquals("BIGINT", rs.getMetaData().getColumnTypeName(1));
+            Assert.assertEquals("DOUBLE", rs.getMetaData().getColumnTypeName(3));
+            rs.next();
+            Assert.assertEquals(12000, rs.getLong("id"));
+            Assert.assertEquals("super", rs.getString("name"));
+            Assert.assertEquals(0.5, rs.getDouble("p"), 0.0001);
+            Assert.assertEquals("{\"b\":1}", rs.getString("em"));
+            Assert.assertEquals(null, rs.getString("s"));
+            rs.next();
+            Assert.assertEquals(-90, rs.getLong("id"));
+            Assert.assertEquals(null, rs.getString("name"));
+            Assert.assertEquals(-1.25, rs.getDouble("p"), 0.0001);
+            Assert.assertEquals(string8k, rs.getString("s"));
+            Assert.assertFalse(rs.next());
+
+            ResultSet rs1 = c.prepareStatement("select * from ixy").executeQuery();
+            rs1.next();
+            Assert.assertEquals("5", rs1.getString("a"));
+        }
+        // conversion instead of restore would write new snapshot
+        Assert.assertArrayEquals(bytes, Files.readAllBytes(snapshot.toPath()));
+    }
+
+    @Test
+    public void convertFileAgainWhenItChangedInSameLengthAndTimeAsSnapshot() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+        long lastModified = json.lastModified();
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+
+        // rewrite in same time slot, last modified time doesn't show change
+        write(json, "{a:[{id:2}]}");
+        Assert.assertTrue(json.setLastModified(lastModified));
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(2, rs.getLong("id"));
+        }
+    }
+
+    @Test
+    public void restoreFromSnapshotOfOldFileWithoutRefresh() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+        Assert.assertTrue(json.setLastModified(json.lastModified() - 60 * 60 * 1000));
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+        }
+        Assert.assertArrayEquals(bytes, Files.readAllBytes(snapshot.toPath()));
+    }
+
+    @Test
+    public void refreshSnapshotWhenOnlyModificationTimeOfFileChanged() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+
+        // like copy to other node which doesn't keep modification time
+        Assert.assertTrue(json.setLastModified(json.lastModified() - 60 * 1000));
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+        }
+
+        byte[] refreshed = Files.readAllBytes(snapshot.toPath());
+        Assert.assertEquals(bytes.length, refreshed.length);
+        Assert.assertEquals(json.lastModified(), ByteBuffer.wrap(refreshed).getLong(Snapshot.LAST_MODIFIED_OFFSET));
+        Assert.assertArrayEquals(
+                Arrays.copyOfRange(bytes, Snapshot.HASH_OFFSET, bytes.length),
+                Arrays.copyOfRange(refreshed, Snapshot.HASH_OFFSET, refreshed.length));
+
+        // next restore trusts refreshed time and doesn't touch snapshot anymore
+        sqlOnJson.convertPlain(json, snapshot).close();
+        Assert.assertArrayEquals(refreshed, Files.readAllBytes(snapshot.toPath()));
+    }
+
+    @Test
+    public void convertFileAgainWhenSnapshotIsStale() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+
+        write(json, "{a:[{id:2,name:\"new\"}]}");
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(2, rs.getLong("id"));
+            Assert.assertEquals("new", rs.getString("name"));
+        }
+    }
+
+    @Test
+    public void convertFileAgainWhenSnapshotIsCorrupted() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+        Files.write(snapshot.toPath(), Arrays.copyOf(bytes, bytes.length - 5));
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+        }
+        Assert.assertEquals(bytes.length, snapshot.length());
+    }
+
+    @Test
+    public void convertFileWhenSnapshotDirectoryIsNotWritable() throws Exception {
+        File json = folder.newFile("a.json");
+        File directory = folder.newFolder("readonly");
+        File snapshot = new File(directory, "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+        Assert.assertTrue(directory.setWritable(false));
+        Assume.assumeTrue(!directory.canWrite()); // root ignores permissions
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+        } finally {
+            Assert.assertTrue(directory.setWritable(true));
+        }
+        Assert.assertFalse(snapshot.exists());
+    }
+
+    @Test
+    public void convertFileWhenSnapshotCantBeCreated() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.newFile("not-a-directory"), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+        }
+        Assert.assertFalse(snapshot.exists());
+    }
+
+    @Test
+    public void convertFileAndRemoveTempFileWhenSnapshotCantBeReplaced() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = folder.newFolder("a.snapshot");
+        Assert.assertTrue(new File(snapshot, "child").createNewFile());
+        write(json, "{a:[{id:1}]}");
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+        }
+        String[] files = folder.getRoot().list();
+        Arrays.sort(files);
+        Assert.assertArrayEquals(new String[]{"a.json", "a.snapshot"}, files);
+    }
+
+    @Test
+    public void convertFileAgainWhenSnapshotHasWrongChecksum() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+        bytes[bytes.length - 10] ^= 1; // last byte of id value
+        Files.write(snapshot.toPath(), bytes);
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+        }
+    }
+
+    @Test
+    public void convertFileAgainWhenSnapshotHasTooBigRowCount() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{id:1}]}");
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+
+        // body: true, "a", column count, "id", "BIGINT", row count
+        putIntWithValidChecksum(snapshot, 1 + 3 + 4 + 4 + 8, Integer.MAX_VALUE);
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals(1, rs.getLong("id"));
+            Assert.assertFalse(rs.next());
+        }
+    }
+
+    @Test
+    public void convertFileAgainWhenSnapshotHasNegativeStringLength() throws Exception {
+        File json = folder.newFile("a.json");
+        File snapshot = new File(folder.getRoot(), "a.snapshot");
+        write(json, "{a:[{s:\"x\"}]}");
+
+        sqlOnJson.convertPlain(json, snapshot).close();
+
+        // body: true, "a", column count, "s", "STRING", row count, present, string length
+        putIntWithValidChecksum(snapshot, 1 + 3 + 4 + 3 + 8 + 4 + 1, -1);
+
+        try (Connection c = sqlOnJson.convertPlain(json, snapshot)) {
+            ResultSet rs = c.prepareStatement("select * from a").executeQuery();
+            rs.next();
+            Assert.assertEquals("x", rs.getString("s"));
+        }
+    }
+
 }